@@ -0,0 +1,124 @@
+/*
+ * This file is part of IRCBot.
+ * Copyright (c) 2011 Ryan Morrison
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions, and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions, and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *  * Neither the name of the author of this software nor the name of
+ *  contributors to this software may be used to endorse or promote products
+ *  derived from this software without specific prior written consent.
+ *  
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ *  AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ *  IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ *  ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ *  LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ *  CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ *  SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ *  INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ *  CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ *  ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ *  POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package us.rddt.IRCBot;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+
+import org.pircbotx.PircBotX;
+import org.pircbotx.hooks.events.MessageEvent;
+
+// Benchmark of end-to-end !decide latency and throughput, comparing the old dispatch (a new thread and a new
+// Random for every request) against HandlerDispatcher running FortuneHandler inline. Runnable without a build system:
+//   javac -cp pircbotx.jar:commons-lang3.jar -d out src/us/rddt/IRCBot/*.java bench/us/rddt/IRCBot/DecideBenchmark.java
+//   java -cp pircbotx.jar:commons-lang3.jar:out us.rddt.IRCBot.DecideBenchmark [requests]
+public class DecideBenchmark {
+	// Variables
+	private static final String MESSAGE = "!decide herp or derp or maybe";
+	private static final PircBotX bot = new PircBotX();
+	
+	public static void main(String[] args) throws Exception {
+		int requests = args.length > 0 ? Integer.parseInt(args[0]) : 50000;
+		// Warm up both paths so the JIT has compiled them before anything is measured
+		for(int i = 0; i < 3; i++) {
+			run(false, requests);
+			run(true, requests);
+		}
+		report("before", run(false, requests));
+		report("after", run(true, requests));
+	}
+	
+	// Send a number of !decide requests through one of the paths, returning each request's latency and the total time
+	private static long[] run(boolean inline, int requests) throws InterruptedException {
+		HandlerDispatcher dispatcher = new HandlerDispatcher();
+		CountDownLatch responded = new CountDownLatch(requests);
+		TimedEvent[] events = new TimedEvent[requests];
+		long start = System.nanoTime();
+		for(int i = 0; i < requests; i++) {
+			events[i] = new TimedEvent(responded);
+			events[i].sent = System.nanoTime();
+			if(inline) dispatcher.dispatch(events[i], "FortuneHandler", HandlerDispatcher.Cost.TRIVIAL, new FortuneHandler(events[i]));
+			else new Thread(new LegacyFortuneHandler(events[i])).start();
+		}
+		responded.await();
+		long[] results = new long[requests + 1];
+		for(int i = 0; i < requests; i++) results[i] = events[i].received - events[i].sent;
+		results[requests] = System.nanoTime() - start;
+		return results;
+	}
+	
+	// Print the median and 99th percentile latency and the overall throughput of a run
+	private static void report(String name, long[] results) {
+		int requests = results.length - 1;
+		long total = results[requests];
+		long[] latencies = Arrays.copyOf(results, requests);
+		Arrays.sort(latencies);
+		System.out.println(String.format("%-6s p50=%8d ns  p99=%8d ns  throughput=%,d requests/s",
+				name, latencies[requests / 2], latencies[requests * 99 / 100], (long)(requests / (total / 1e9))));
+	}
+	
+	// A message event that records when the bot responded to it instead of sending anything
+	private static final class TimedEvent extends MessageEvent {
+		// Variables
+		private final CountDownLatch responded;
+		private volatile long sent, received;
+		
+		private TimedEvent(CountDownLatch responded) {
+			super(bot, null, null, MESSAGE);
+			this.responded = responded;
+		}
+		
+		public String getMessage() {
+			return MESSAGE;
+		}
+		
+		public void respond(String response) {
+			received = System.nanoTime();
+			responded.countDown();
+		}
+	}
+	
+	// FortuneHandler as it was before HandlerDispatcher, creating a new Random for every request
+	private static final class LegacyFortuneHandler implements Runnable {
+		// Variables
+		private final MessageEvent event;
+		
+		private LegacyFortuneHandler(MessageEvent event) {
+			this.event = event;
+		}
+		
+		public void run() {
+			String[] splitMessage = event.getMessage().substring(8).split("\\s+or\\s+");
+			Random generator = new Random();
+			if(splitMessage.length == 1) event.respond(generator.nextInt(2) == 1 ? "Yes" : "No");
+			else event.respond(splitMessage[generator.nextInt(splitMessage.length)].replaceAll("^\\s+", ""));
+		}
+	}
+}
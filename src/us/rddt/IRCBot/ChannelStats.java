@@ -0,0 +1,426 @@
+/*
+ * This file is part of IRCBot.
+ * Copyright (c) 2011 Ryan Morrison
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions, and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions, and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *  * Neither the name of the author of this software nor the name of
+ *  contributors to this software may be used to endorse or promote products
+ *  derived from this software without specific prior written consent.
+ *  
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ *  AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ *  IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ *  ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ *  LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ *  CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ *  SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ *  INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ *  CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ *  ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ *  POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package us.rddt.IRCBot;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TimeZone;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * Statistics are persisted to the following table:
+ * 
+ * CREATE TABLE Stats (
+ *   Channel VARCHAR(64) NOT NULL,
+ *   Category VARCHAR(16) NOT NULL,
+ *   Name VARCHAR(64) NOT NULL,
+ *   Value BIGINT NOT NULL,
+ *   PRIMARY KEY (Channel, Category, Name)
+ * );
+ */
+public class ChannelStats {
+	// How often the in-memory statistics are written to the database
+	private static final long FLUSH_INTERVAL_MINUTES = 5;
+	// Number of top shouters/link posters tracked per channel
+	private static final int TOP_COUNT = 10;
+	// Number of hourly buckets kept for the recent activity window
+	private static final int RECENT_HOURS = 24;
+	private static final long MILLIS_PER_HOUR = 60 * 60 * 1000;
+	
+	// Statistics for each channel the bot has seen a message in
+	private static final ConcurrentHashMap<String, ChannelStats> channels = new ConcurrentHashMap<String, ChannelStats>();
+	// Single background thread used to load and flush statistics so handlers never wait on the database
+	private static final ScheduledExecutorService flusher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+		public Thread newThread(Runnable r) {
+			Thread thread = new Thread(r, "ChannelStats flusher");
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+	
+	// Start the periodic flush the first time the class is used
+	static {
+		flusher.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				flushAll();
+			}
+		}, FLUSH_INTERVAL_MINUTES, FLUSH_INTERVAL_MINUTES, TimeUnit.MINUTES);
+	}
+	
+	// Variables
+	private final String channel;
+	// Whether the stored statistics have been loaded - until then, flushing would overwrite them
+	private volatile boolean loaded = false;
+	private final AtomicLong messages = new AtomicLong();
+	private final AtomicLong shouts = new AtomicLong();
+	private final AtomicLong links = new AtomicLong();
+	private final AtomicLong votekicksStarted = new AtomicLong();
+	private final AtomicLong votekicksPassed = new AtomicLong();
+	private final AtomicLong votekicksFailed = new AtomicLong();
+	// Messages per hour of the day since statistics began
+	private final long[] hourOfDay = new long[24];
+	// Messages per hour for the last day, along with the hour each bucket currently holds
+	private final long[] recentCounts = new long[RECENT_HOURS];
+	private final long[] recentHours = new long[RECENT_HOURS];
+	private final HeavyHitters topShouters = new HeavyHitters(TOP_COUNT);
+	private final HeavyHitters topLinkers = new HeavyHitters(TOP_COUNT);
+	
+	// Class constructor
+	private ChannelStats(String channel) {
+		this.channel = channel;
+	}
+	
+	// Method to get the statistics for a channel, creating them and loading what's stored in the database if required
+	public static ChannelStats forChannel(String channel) {
+		ChannelStats stats = channels.get(channel);
+		if(stats == null) {
+			final ChannelStats created = new ChannelStats(channel);
+			stats = channels.putIfAbsent(channel, created);
+			if(stats == null) {
+				stats = created;
+				// Load the stored statistics in the background and add them to whatever has been counted since
+				flusher.execute(new Runnable() {
+					public void run() {
+						created.load();
+					}
+				});
+			}
+		}
+		return stats;
+	}
+	
+	// Record a message sent to the channel
+	public void recordMessage() {
+		messages.incrementAndGet();
+		long now = System.currentTimeMillis();
+		long hour = (now + TimeZone.getDefault().getOffset(now)) / MILLIS_PER_HOUR;
+		synchronized(hourOfDay) {
+			hourOfDay[(int)(hour % 24)]++;
+			// Reuse the bucket if it's from an older day
+			int bucket = (int)(hour % RECENT_HOURS);
+			if(recentHours[bucket] != hour) {
+				recentHours[bucket] = hour;
+				recentCounts[bucket] = 0;
+			}
+			recentCounts[bucket]++;
+		}
+	}
+	
+	// Record a shout by a user
+	public void recordShout(String nick) {
+		shouts.incrementAndGet();
+		topShouters.add(nick, 1);
+	}
+	
+	// Record a link posted by a user
+	public void recordLink(String nick) {
+		links.incrementAndGet();
+		topLinkers.add(nick, 1);
+	}
+	
+	// Record the start of a votekick
+	public void recordVotekickStarted() {
+		votekicksStarted.incrementAndGet();
+	}
+	
+	// Record the outcome of a votekick
+	public void recordVotekickResult(boolean passed) {
+		if(passed) votekicksPassed.incrementAndGet();
+		else votekicksFailed.incrementAndGet();
+	}
+	
+	// Method to summarise the top shouters for the channel
+	public String getTopShouters() {
+		return "Top shouters: " + topShouters.describe() + " (" + shouts.get() + " shouts total)";
+	}
+	
+	// Method to summarise the top link posters for the channel
+	public String getTopLinkers() {
+		return "Most links posted: " + topLinkers.describe() + " (" + links.get() + " links total)";
+	}
+	
+	// Method to summarise the busiest hours of the day and activity over the last day
+	public String getBusiestHours() {
+		long[] hours;
+		long recent = 0;
+		long currentHour = (System.currentTimeMillis() + TimeZone.getDefault().getOffset(System.currentTimeMillis())) / MILLIS_PER_HOUR;
+		synchronized(hourOfDay) {
+			hours = hourOfDay.clone();
+			for(int i = 0; i < RECENT_HOURS; i++) {
+				if(currentHour - recentHours[i] < RECENT_HOURS) recent += recentCounts[i];
+			}
+		}
+		// Pick out the three busiest hours
+		StringBuilder result = new StringBuilder("Busiest hours: ");
+		boolean found = false;
+		for(int n = 0; n < 3; n++) {
+			int busiest = -1;
+			for(int i = 0; i < 24; i++) {
+				if(hours[i] > 0 && (busiest == -1 || hours[i] > hours[busiest])) busiest = i;
+			}
+			if(busiest == -1) break;
+			if(found) result.append(", ");
+			result.append(String.format("%02d:00 (%d)", busiest, hours[busiest]));
+			hours[busiest] = 0;
+			found = true;
+		}
+		if(!found) result.append("none yet");
+		return result.append(" - ").append(recent).append(" messages in the last 24 hours").toString();
+	}
+	
+	// Method to summarise the votekick outcomes for the channel
+	public String getVotekickOutcomes() {
+		return "Votekicks: " + votekicksStarted.get() + " started, " + votekicksPassed.get() + " passed, " + votekicksFailed.get() + " failed";
+	}
+	
+	// Method to summarise every statistic in a single line
+	public String getSummary() {
+		return messages.get() + " messages, " + shouts.get() + " shouts, " + links.get() + " links. " + getVotekickOutcomes() + ". Try !stats shouters, links, hours or votekicks.";
+	}
+	
+	// Method to write the statistics of every channel to the database
+	private static void flushAll() {
+		if(channels.isEmpty()) return;
+		long startTime = System.nanoTime();
+		// The counters are cumulative, so if the database is unavailable the next flush will catch up
+		CircuitBreaker.Call call;
+		try {
+			call = Database.breaker.acquire();
+		} catch (CircuitBreaker.RejectedException ex) {
+			return;
+		}
+		Connection connect = null;
+		boolean succeeded = false;
+		try {
+			connect = Database.getConnection();
+			for(ChannelStats stats : channels.values()) {
+				if(stats.loaded) stats.flush(connect);
+			}
+			succeeded = true;
+		} catch (Exception ex) {
+			EventLog.error("ChannelStats", null, null, startTime, ex);
+		} finally {
+			try {
+				if(connect != null) connect.close();
+			} catch (SQLException ex) {
+				EventLog.error("ChannelStats", null, null, startTime, ex);
+			}
+			Database.breaker.release(call, succeeded);
+		}
+	}
+	
+	// Method to write this channel's statistics to the database
+	private void flush(Connection connect) throws SQLException {
+		PreparedStatement preparedStatement = connect.prepareStatement("REPLACE INTO Stats(Channel, Category, Name, Value) VALUES (?, ?, ?, ?)");
+		try {
+			addRow(preparedStatement, "total", "messages", messages.get());
+			addRow(preparedStatement, "total", "shouts", shouts.get());
+			addRow(preparedStatement, "total", "links", links.get());
+			addRow(preparedStatement, "votekick", "started", votekicksStarted.get());
+			addRow(preparedStatement, "votekick", "passed", votekicksPassed.get());
+			addRow(preparedStatement, "votekick", "failed", votekicksFailed.get());
+			long[] hours;
+			synchronized(hourOfDay) {
+				hours = hourOfDay.clone();
+			}
+			for(int i = 0; i < 24; i++) addRow(preparedStatement, "hour", String.valueOf(i), hours[i]);
+			for(HeavyHitters.Entry entry : topShouters.snapshot()) addRow(preparedStatement, "shouts", entry.nick, entry.count);
+			for(HeavyHitters.Entry entry : topLinkers.snapshot()) addRow(preparedStatement, "links", entry.nick, entry.count);
+			preparedStatement.executeBatch();
+		} finally {
+			preparedStatement.close();
+		}
+	}
+	
+	// Method to add a single statistic to a batch of rows to write
+	private void addRow(PreparedStatement preparedStatement, String category, String name, long value) throws SQLException {
+		preparedStatement.setString(1, channel);
+		preparedStatement.setString(2, category);
+		preparedStatement.setString(3, name);
+		preparedStatement.setLong(4, value);
+		preparedStatement.addBatch();
+	}
+	
+	// Method to load this channel's stored statistics and add them to the live counters
+	private void load() {
+		long startTime = System.nanoTime();
+		// If the database is unavailable, try again later rather than lose the stored statistics
+		CircuitBreaker.Call call;
+		try {
+			call = Database.breaker.acquire();
+		} catch (CircuitBreaker.RejectedException ex) {
+			retryLoad();
+			return;
+		}
+		Connection connect = null;
+		boolean succeeded = false;
+		try {
+			connect = Database.getConnection();
+			PreparedStatement preparedStatement = connect.prepareStatement("SELECT * FROM Stats WHERE Channel = ?");
+			preparedStatement.setString(1, channel);
+			ResultSet resultSet = preparedStatement.executeQuery();
+			// Read every row before applying any, so a failure part way through can be retried without counting twice
+			List<String[]> rows = new ArrayList<String[]>();
+			while(resultSet.next()) {
+				rows.add(new String[] { resultSet.getString("Category"), resultSet.getString("Name"), String.valueOf(resultSet.getLong("Value")) });
+			}
+			resultSet.close();
+			preparedStatement.close();
+			for(String[] row : rows) {
+				String category = row[0];
+				String name = row[1];
+				long value = Long.parseLong(row[2]);
+				if(category.equals("total") && name.equals("messages")) messages.addAndGet(value);
+				else if(category.equals("total") && name.equals("shouts")) shouts.addAndGet(value);
+				else if(category.equals("total") && name.equals("links")) links.addAndGet(value);
+				else if(category.equals("votekick") && name.equals("started")) votekicksStarted.addAndGet(value);
+				else if(category.equals("votekick") && name.equals("passed")) votekicksPassed.addAndGet(value);
+				else if(category.equals("votekick") && name.equals("failed")) votekicksFailed.addAndGet(value);
+				else if(category.equals("hour")) {
+					synchronized(hourOfDay) {
+						hourOfDay[Integer.parseInt(name) % 24] += value;
+					}
+				}
+				else if(category.equals("shouts")) topShouters.add(name, value);
+				else if(category.equals("links")) topLinkers.add(name, value);
+			}
+			succeeded = true;
+			loaded = true;
+		} catch (Exception ex) {
+			EventLog.error("ChannelStats", channel, null, startTime, ex);
+			if(!loaded) retryLoad();
+		} finally {
+			try {
+				if(connect != null) connect.close();
+			} catch (SQLException ex) {
+				EventLog.error("ChannelStats", channel, null, startTime, ex);
+			}
+			Database.breaker.release(call, succeeded);
+		}
+	}
+	
+	// Method to schedule another attempt at loading the stored statistics
+	private void retryLoad() {
+		flusher.schedule(new Runnable() {
+			public void run() {
+				load();
+			}
+		}, FLUSH_INTERVAL_MINUTES, TimeUnit.MINUTES);
+	}
+	
+	// Class for estimating per-user counts in fixed memory using a count-min sketch, tracking the heaviest users
+	private static final class HeavyHitters {
+		// Dimensions of the sketch - 4 rows of 1024 counters keeps the error small for a channel's worth of nicks
+		private static final int DEPTH = 4;
+		private static final int WIDTH = 1024;
+		private static final int[] SEEDS = { 0x9E3779B1, 0x85EBCA77, 0xC2B2AE3D, 0x27D4EB2F };
+		
+		// Variables
+		private final long[][] counts = new long[DEPTH][WIDTH];
+		private final Entry[] top;
+		
+		// Constructor for the HeavyHitters class
+		private HeavyHitters(int size) {
+			top = new Entry[size];
+		}
+		
+		// Add to a user's count and update the list of heaviest users with the new estimate
+		private synchronized void add(String nick, long amount) {
+			int hash = nick.toLowerCase().hashCode();
+			long estimate = Long.MAX_VALUE;
+			for(int i = 0; i < DEPTH; i++) {
+				int h = hash * SEEDS[i];
+				int index = (h ^ (h >>> 16)) & (WIDTH - 1);
+				counts[i][index] += amount;
+				estimate = Math.min(estimate, counts[i][index]);
+			}
+			// Update the user if they're already in the list, otherwise replace the lightest entry if they've overtaken it
+			int empty = -1, lightest = -1;
+			for(int i = 0; i < top.length; i++) {
+				if(top[i] == null) {
+					if(empty == -1) empty = i;
+					continue;
+				}
+				if(top[i].nick.equalsIgnoreCase(nick)) {
+					top[i].count = estimate;
+					return;
+				}
+				if(lightest == -1 || top[i].count < top[lightest].count) lightest = i;
+			}
+			if(empty != -1) top[empty] = new Entry(nick, estimate);
+			else if(top[lightest].count < estimate) top[lightest] = new Entry(nick, estimate);
+		}
+		
+		// Method to return a copy of the heaviest users, sorted by count
+		private synchronized List<Entry> snapshot() {
+			List<Entry> entries = new ArrayList<Entry>();
+			for(Entry entry : top) {
+				if(entry == null) continue;
+				int i = 0;
+				while(i < entries.size() && entries.get(i).count >= entry.count) i++;
+				entries.add(i, new Entry(entry.nick, entry.count));
+			}
+			return entries;
+		}
+		
+		// Method to describe the heaviest users for display
+		private String describe() {
+			List<Entry> entries = snapshot();
+			if(entries.isEmpty()) return "none yet";
+			StringBuilder result = new StringBuilder();
+			for(int i = 0; i < entries.size() && i < 5; i++) {
+				if(i > 0) result.append(", ");
+				result.append(entries.get(i).nick).append(" (").append(entries.get(i).count).append(")");
+			}
+			return result.toString();
+		}
+		
+		// Class for a single user in the list of heaviest users
+		private static final class Entry {
+			// Variables
+			private final String nick;
+			private long count;
+			
+			// Constructor for the Entry class
+			private Entry(String nick, long count) {
+				this.nick = nick;
+				this.count = count;
+			}
+		}
+	}
+}
@@ -0,0 +1,257 @@
+/*
+ * This file is part of IRCBot.
+ * Copyright (c) 2011 Ryan Morrison
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions, and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions, and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *  * Neither the name of the author of this software nor the name of
+ *  contributors to this software may be used to endorse or promote products
+ *  derived from this software without specific prior written consent.
+ *  
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ *  AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ *  IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ *  ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ *  LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ *  CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ *  SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ *  INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ *  CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ *  ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ *  POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package us.rddt.IRCBot;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+public class CircuitBreaker {
+	// Number of recent calls the failure and slow call rates are calculated over
+	private static final int WINDOW_SIZE = 20;
+	// Minimum number of calls in the window before the circuit can trip
+	private static final int MINIMUM_CALLS = 10;
+	// Percentage of failed or slow calls in the window that trips the circuit
+	private static final int FAILURE_RATE_THRESHOLD = 50;
+	private static final int SLOW_CALL_RATE_THRESHOLD = 50;
+	// How long the circuit stays open before letting probe calls through
+	private static final long OPEN_MILLIS = 30 * 1000;
+	// Number of probe calls let through while half-open, all of which must succeed to close the circuit
+	private static final int HALF_OPEN_PROBES = 3;
+	// Limits for the per-host HTTP breakers
+	private static final int HOST_MAX_CONCURRENT = 2;
+	private static final long HOST_SLOW_CALL_MILLIS = 5000;
+	private static final int MAX_HOST_BREAKERS = 256;
+	
+	// Every breaker that has been created, so their state can be reported
+	private static final ConcurrentHashMap<String, CircuitBreaker> breakers = new ConcurrentHashMap<String, CircuitBreaker>();
+	
+	// The states a circuit can be in
+	public enum State { CLOSED, OPEN, HALF_OPEN }
+	
+	// Variables
+	private final String name;
+	private final int maxConcurrent;
+	private final long slowCallNanos;
+	// The bulkhead capping the number of concurrent calls to the dependency
+	private final Semaphore bulkhead;
+	private State state = State.CLOSED;
+	private long openedAt = 0;
+	// Bumped on every state change, so calls can tell whether the circuit has moved on since they started
+	private long generation = 0;
+	private int probesStarted = 0, probesSucceeded = 0;
+	// Outcomes of the most recent calls
+	private final boolean[] failedCalls = new boolean[WINDOW_SIZE];
+	private final boolean[] slowCalls = new boolean[WINDOW_SIZE];
+	private int windowIndex = 0, windowCount = 0, failures = 0, slows = 0;
+	// Counters reported as metrics
+	private long totalCalls = 0, totalFailures = 0, totalSlow = 0, totalRejected = 0;
+	
+	// Class constructor
+	public CircuitBreaker(String name, int maxConcurrent, long slowCallMillis) {
+		this.name = name;
+		this.maxConcurrent = maxConcurrent;
+		this.slowCallNanos = slowCallMillis * 1000000;
+		this.bulkhead = new Semaphore(maxConcurrent);
+		breakers.put(name, this);
+	}
+	
+	// Method to get the breaker for outbound HTTP requests to a host, creating it if required
+	public static CircuitBreaker forHost(String host) {
+		String key = "http:" + host.toLowerCase();
+		CircuitBreaker breaker = breakers.get(key);
+		if(breaker != null) return breaker;
+		// Links can point anywhere, so forget about healthy idle hosts rather than let the map grow forever
+		if(breakers.size() > MAX_HOST_BREAKERS) {
+			Iterator<CircuitBreaker> iterator = breakers.values().iterator();
+			while(iterator.hasNext()) {
+				CircuitBreaker existing = iterator.next();
+				if(existing.name.startsWith("http:") && existing.isIdle()) iterator.remove();
+			}
+		}
+		synchronized(breakers) {
+			breaker = breakers.get(key);
+			if(breaker == null) breaker = new CircuitBreaker(key, HOST_MAX_CONCURRENT, HOST_SLOW_CALL_MILLIS);
+			return breaker;
+		}
+	}
+	
+	// Method to ask permission to call the dependency, throws a RejectedException if the call should fail fast
+	// Every successful acquire must be followed by a call to release with the returned Call
+	public Call acquire() throws RejectedException {
+		return acquire(0);
+	}
+	
+	// Method to ask permission to call the dependency, waiting up to the given time for a place in the bulkhead
+	// An open circuit is still rejected straight away, since waiting won't make the dependency healthy
+	public Call acquire(long bulkheadWaitMillis) throws RejectedException {
+		long callGeneration;
+		boolean probe = false;
+		synchronized(this) {
+			if(state == State.OPEN) {
+				if(System.currentTimeMillis() - openedAt < OPEN_MILLIS) {
+					totalRejected++;
+					throw new RejectedException(name + " is unavailable", true);
+				}
+				// The circuit has been open long enough, start letting probe calls through
+				transition(State.HALF_OPEN);
+			}
+			if(state == State.HALF_OPEN) {
+				if(probesStarted >= HALF_OPEN_PROBES) {
+					totalRejected++;
+					throw new RejectedException(name + " is unavailable", true);
+				}
+				probesStarted++;
+				probe = true;
+			}
+			callGeneration = generation;
+		}
+		boolean permitted;
+		try {
+			permitted = bulkhead.tryAcquire(bulkheadWaitMillis, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			permitted = false;
+		}
+		if(!permitted) {
+			synchronized(this) {
+				totalRejected++;
+				// Give the probe back, unless the circuit has already moved on and reset its probes
+				if(probe && callGeneration == generation) probesStarted--;
+			}
+			throw new RejectedException(name + " has too many calls in progress", false);
+		}
+		return new Call(callGeneration, probe);
+	}
+	
+	// Method to record the outcome of a call started with acquire
+	public void release(Call call, boolean succeeded) {
+		bulkhead.release();
+		boolean slow = System.nanoTime() - call.startNanos > slowCallNanos;
+		synchronized(this) {
+			totalCalls++;
+			if(!succeeded) totalFailures++;
+			if(slow) totalSlow++;
+			// Calls that were already in progress when the circuit changed state say nothing about it now
+			if(call.generation != generation) return;
+			if(call.probe) {
+				// A single bad probe reopens the circuit, enough good ones close it again
+				if(!succeeded || slow) transition(State.OPEN);
+				else if(++probesSucceeded >= HALF_OPEN_PROBES) transition(State.CLOSED);
+				return;
+			}
+			// Replace the oldest outcome in the window with this one
+			if(windowCount == WINDOW_SIZE) {
+				if(failedCalls[windowIndex]) failures--;
+				if(slowCalls[windowIndex]) slows--;
+			} else {
+				windowCount++;
+			}
+			failedCalls[windowIndex] = !succeeded;
+			slowCalls[windowIndex] = slow;
+			if(!succeeded) failures++;
+			if(slow) slows++;
+			windowIndex = (windowIndex + 1) % WINDOW_SIZE;
+			if(windowCount >= MINIMUM_CALLS && (failures * 100 >= FAILURE_RATE_THRESHOLD * windowCount || slows * 100 >= SLOW_CALL_RATE_THRESHOLD * windowCount)) {
+				transition(State.OPEN);
+			}
+		}
+	}
+	
+	// Method to move the circuit into a new state and reset the bookkeeping for it
+	private void transition(State newState) {
+		EventLog.warn("CircuitBreaker", name + " circuit " + state + " -> " + newState + " (" + failures + " failed and " + slows + " slow of the last " + windowCount + " calls)");
+		state = newState;
+		generation++;
+		if(newState == State.OPEN) openedAt = System.currentTimeMillis();
+		probesStarted = 0;
+		probesSucceeded = 0;
+		windowIndex = 0;
+		windowCount = 0;
+		failures = 0;
+		slows = 0;
+		for(int i = 0; i < WINDOW_SIZE; i++) {
+			failedCalls[i] = false;
+			slowCalls[i] = false;
+		}
+	}
+	
+	// Returns the current state of the circuit
+	public synchronized State getState() {
+		return state;
+	}
+	
+	// Returns whether the circuit is closed with no calls in progress
+	private synchronized boolean isIdle() {
+		return state == State.CLOSED && bulkhead.availablePermits() == maxConcurrent;
+	}
+	
+	// Method to describe the breaker's state and counters for display
+	public synchronized String getMetrics() {
+		return name + ": " + state.toString().toLowerCase() + " (" + totalCalls + " calls, " + totalFailures + " failed, " + totalSlow + " slow, " + totalRejected + " rejected)";
+	}
+	
+	// Method to describe every breaker that isn't closed, along with the given breaker regardless of state
+	public static String getAllMetrics(CircuitBreaker always) {
+		StringBuilder result = new StringBuilder(always.getMetrics());
+		for(CircuitBreaker breaker : breakers.values()) {
+			if(breaker != always && breaker.getState() != State.CLOSED) result.append("; ").append(breaker.getMetrics());
+		}
+		return result.toString();
+	}
+	
+	// A call permitted by acquire, to be handed back to release once it finishes
+	public static final class Call {
+		private final long startNanos = System.nanoTime();
+		private final long generation;
+		private final boolean probe;
+		
+		private Call(long generation, boolean probe) {
+			this.generation = generation;
+			this.probe = probe;
+		}
+	}
+	
+	// Exception thrown when a call is rejected because the circuit is open or the bulkhead is full
+	public static class RejectedException extends Exception {
+		private static final long serialVersionUID = 1L;
+		private final boolean circuitOpen;
+		
+		public RejectedException(String message, boolean circuitOpen) {
+			super(message);
+			this.circuitOpen = circuitOpen;
+		}
+		
+		// Returns true if the dependency is considered unhealthy, false if it's healthy but busy
+		public boolean isCircuitOpen() {
+			return circuitOpen;
+		}
+	}
+}
@@ -0,0 +1,365 @@
+/*
+ * This file is part of IRCBot.
+ * Copyright (c) 2011 Ryan Morrison
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions, and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions, and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *  * Neither the name of the author of this software nor the name of
+ *  contributors to this software may be used to endorse or promote products
+ *  derived from this software without specific prior written consent.
+ *  
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ *  AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ *  IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ *  ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ *  LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ *  CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ *  SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ *  INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ *  CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ *  ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ *  POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package us.rddt.IRCBot;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.nio.charset.Charset;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+import org.pircbotx.hooks.events.MessageEvent;
+
+public class EventLog {
+	// Location of the log file, rolled files are written next to it
+	private static final String LOG_DIRECTORY = "logs";
+	private static final String LOG_NAME = "ircbot";
+	// Roll the log file once it reaches this size or once the hour changes, whichever comes first
+	private static final long MAX_FILE_BYTES = 10 * 1024 * 1024;
+	private static final long ROLL_INTERVAL_MILLIS = 60 * 60 * 1000;
+	// How long to stop writing after the log file fails, and how often to complain about it on stderr
+	private static final long FAILURE_BACKOFF_MILLIS = 10 * 1000;
+	private static final long FAILURE_REPORT_MILLIS = 60 * 1000;
+	// How often the writer looks for suppressed errors to summarise
+	private static final long SUMMARY_INTERVAL_MILLIS = 1000;
+	// Number of slots in the ring buffer, must be a power of two
+	private static final int BUFFER_SIZE = 4096;
+	// How long the writer sleeps when there is nothing to write
+	private static final long WRITER_IDLE_NANOS = 10 * 1000 * 1000;
+	// Only one in this many successful handler runs is logged
+	private static final int SUCCESS_SAMPLE_RATE = 100;
+	// At most this many identical errors are logged per window, the rest are counted and summarised
+	private static final int MAX_REPEATED_ERRORS = 5;
+	private static final long REPEATED_ERROR_WINDOW_MILLIS = 60 * 1000;
+	
+	// The ring buffer events are published to, and the counters used to claim and consume its slots
+	private static final AtomicReferenceArray<Event> ring = new AtomicReferenceArray<Event>(BUFFER_SIZE);
+	private static final AtomicLong head = new AtomicLong();
+	private static volatile long tail = 0;
+	// Number of events dropped because the ring buffer was full
+	private static final AtomicLong dropped = new AtomicLong();
+	// Windows used to rate limit repeated identical errors, keyed by handler and error class
+	private static final ConcurrentHashMap<String, ErrorWindow> errorWindows = new ConcurrentHashMap<String, ErrorWindow>();
+	
+	// Start the background writer the first time the class is used
+	static {
+		Thread writer = new Thread(new Writer(), "EventLog writer");
+		writer.setDaemon(true);
+		writer.start();
+		// Write out anything still in the buffer when the bot shuts down
+		Runtime.getRuntime().addShutdownHook(new Thread() {
+			public void run() {
+				Writer.drainOnShutdown();
+			}
+		});
+	}
+	
+	// Log an error thrown while a handler was processing a message
+	public static void error(String handler, MessageEvent event, long startNanos, Throwable ex) {
+		String channel = event.getChannel() != null ? event.getChannel().getName() : null;
+		String nick = event.getUser() != null ? event.getUser().getNick() : null;
+		error(handler, channel, nick, startNanos, ex);
+	}
+	
+	// Log an error thrown by background work that isn't tied to a single message
+	public static void error(String handler, String channel, String nick, long startNanos, Throwable ex) {
+		long latency = System.nanoTime() - startNanos;
+		// Rate limit repeated identical errors so an error storm doesn't flood the log
+		String key = handler + ':' + ex.getClass().getName();
+		ErrorWindow window = errorWindows.get(key);
+		if(window == null) {
+			ErrorWindow created = new ErrorWindow(handler, ex.getClass().getName());
+			window = errorWindows.putIfAbsent(key, created);
+			if(window == null) window = created;
+		}
+		int suppressed = window.admit(System.currentTimeMillis());
+		if(suppressed < 0) return;
+		publish(new Event("ERROR", handler, channel, nick, latency, ex, suppressed));
+	}
+	
+	// Log a notable change in the bot's state, such as a circuit breaker opening
+	public static void warn(String handler, String message) {
+		Event logEvent = new Event("WARN", handler, null, null, 0, null, 0);
+		logEvent.message = message;
+		publish(logEvent);
+	}
+	
+	// Log a successful handler run, sampled to keep the log volume down
+	public static void success(String handler, MessageEvent event, long startNanos) {
+		if(ThreadLocalRandom.current().nextInt(SUCCESS_SAMPLE_RATE) != 0) return;
+		String channel = event.getChannel() != null ? event.getChannel().getName() : null;
+		String nick = event.getUser() != null ? event.getUser().getNick() : null;
+		publish(new Event("INFO", handler, channel, nick, System.nanoTime() - startNanos, null, 0));
+	}
+	
+	// Method to claim a slot in the ring buffer and publish an event to it without blocking
+	private static void publish(Event logEvent) {
+		while(true) {
+			long claim = head.get();
+			// If the writer has fallen a whole buffer behind, drop the event rather than wait for it
+			if(claim - tail >= BUFFER_SIZE) {
+				dropped.incrementAndGet();
+				return;
+			}
+			if(head.compareAndSet(claim, claim + 1)) {
+				ring.lazySet((int)(claim & (BUFFER_SIZE - 1)), logEvent);
+				return;
+			}
+		}
+	}
+	
+	// Class holding a single log event, captured on the handler thread and formatted on the writer thread
+	private static final class Event {
+		// Variables
+		private final long timestamp = System.currentTimeMillis();
+		private final String level;
+		private final String handler;
+		private final String channel;
+		private final String nick;
+		private final long latencyNanos;
+		private final Throwable error;
+		private final int suppressed;
+		private String message = null;
+		
+		// Constructor for the Event class
+		private Event(String level, String handler, String channel, String nick, long latencyNanos, Throwable error, int suppressed) {
+			this.level = level;
+			this.handler = handler;
+			this.channel = channel;
+			this.nick = nick;
+			this.latencyNanos = latencyNanos;
+			this.error = error;
+			this.suppressed = suppressed;
+		}
+	}
+	
+	// Class tracking how many times an identical error has occurred in the current window
+	private static final class ErrorWindow {
+		// Variables
+		private final String handler;
+		private final String errorClass;
+		private volatile long windowStart = 0;
+		private final AtomicInteger count = new AtomicInteger();
+		private final AtomicInteger suppressed = new AtomicInteger();
+		
+		// Constructor for the ErrorWindow class
+		private ErrorWindow(String handler, String errorClass) {
+			this.handler = handler;
+			this.errorClass = errorClass;
+		}
+		
+		// Returns -1 if the error should be suppressed, otherwise the number suppressed since the last one logged
+		private int admit(long now) {
+			if(now - windowStart > REPEATED_ERROR_WINDOW_MILLIS) {
+				// Start a new window - a racing thread may reset it too, which only lets an extra error through
+				windowStart = now;
+				count.set(0);
+			}
+			if(count.incrementAndGet() > MAX_REPEATED_ERRORS) {
+				suppressed.incrementAndGet();
+				return -1;
+			}
+			return suppressed.getAndSet(0);
+		}
+		
+		// Returns the number of errors suppressed in a window that has ended, taking them so they're only reported once
+		private int takeExpired(long now) {
+			if(now - windowStart <= REPEATED_ERROR_WINDOW_MILLIS || suppressed.get() == 0) return 0;
+			return suppressed.getAndSet(0);
+		}
+	}
+	
+	// Class for the background thread that drains the ring buffer and writes events to disk
+	private static final class Writer implements Runnable {
+		// Variables
+		private static final Object fileLock = new Object();
+		private static final Charset UTF8 = Charset.forName("UTF-8");
+		private static final SimpleDateFormat timestampFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSSZ");
+		private static final SimpleDateFormat rollFormat = new SimpleDateFormat("yyyy-MM-dd-HHmmss");
+		private static File file = new File(LOG_DIRECTORY, LOG_NAME + ".log");
+		private static OutputStream out = null;
+		private static long fileBytes = 0;
+		// The roll interval the current file's contents belong to
+		private static long filePeriod = 0;
+		private static long reportedDrops = 0;
+		private static long lastSummary = 0;
+		// While the log file is failing, events are discarded and counted instead of written
+		private static long failedUntil = 0;
+		private static long lastFailureReport = 0;
+		private static long failures = 0;
+		private static long discarded = 0;
+		
+		// Method that executes upon start of thread
+		public void run() {
+			while(true) {
+				if(drain() == 0) LockSupport.parkNanos(WRITER_IDLE_NANOS);
+			}
+		}
+		
+		// Drain whatever is left in the buffer before the JVM exits
+		private static void drainOnShutdown() {
+			drain();
+			synchronized(fileLock) {
+				closeQuietly();
+			}
+		}
+		
+		// Method to write out every published event, returns the number taken from the buffer
+		private static int drain() {
+			synchronized(fileLock) {
+				int taken = 0;
+				long now = System.currentTimeMillis();
+				StringBuilder lines = new StringBuilder();
+				while(true) {
+					int slot = (int)(tail & (BUFFER_SIZE - 1));
+					Event logEvent = ring.get(slot);
+					// A null slot means the next event hasn't been published yet
+					if(logEvent == null) break;
+					ring.set(slot, null);
+					tail++;
+					taken++;
+					lines.append(format(logEvent));
+				}
+				// Report any events the handlers had to drop since we last checked
+				long drops = dropped.get();
+				if(drops != reportedDrops) {
+					lines.append(timestampFormat.format(new Date(now))).append(" level=WARN handler=EventLog dropped=").append(drops - reportedDrops).append('\n');
+					reportedDrops = drops;
+				}
+				// Summarise the errors suppressed in windows that have ended, in case no more of them arrive
+				if(now - lastSummary >= SUMMARY_INTERVAL_MILLIS) {
+					lastSummary = now;
+					for(ErrorWindow window : errorWindows.values()) {
+						int suppressed = window.takeExpired(now);
+						if(suppressed > 0) {
+							lines.append(timestampFormat.format(new Date(now))).append(" level=WARN handler=").append(window.handler)
+								.append(" error=").append(window.errorClass).append(" suppressed=").append(suppressed)
+								.append(" message=\"").append(suppressed).append(" repeated errors were not logged\"\n");
+						}
+					}
+				}
+				if(lines.length() == 0) return taken;
+				// The log file recently failed, so don't try again until the back off has passed
+				if(now < failedUntil) {
+					discarded += taken;
+					return taken;
+				}
+				try {
+					if(discarded > 0) {
+						write(timestampFormat.format(new Date(now)) + " level=WARN handler=EventLog discarded=" + discarded + " message=\"events discarded while the log file was failing\"\n", now);
+						discarded = 0;
+					}
+					write(lines.toString(), now);
+					out.flush();
+				} catch (IOException ex) {
+					closeQuietly();
+					discarded += taken;
+					failures++;
+					failedUntil = now + FAILURE_BACKOFF_MILLIS;
+					// The log itself is broken, so stderr is the only place left to complain to - but not on every drain
+					if(now - lastFailureReport >= FAILURE_REPORT_MILLIS) {
+						System.err.println("EventLog: unable to write log file (" + ex.getMessage() + "), " + failures + " failure(s) since the last report");
+						lastFailureReport = now;
+						failures = 0;
+					}
+				}
+				return taken;
+			}
+		}
+		
+		// Method to write text to the log file, rolling it first if required
+		private static void write(String text, long now) throws IOException {
+			if(out == null) {
+				file.getParentFile().mkdirs();
+				// An existing file belongs to the interval it was last written in
+				filePeriod = (file.exists() ? file.lastModified() : now) / ROLL_INTERVAL_MILLIS;
+				fileBytes = file.length();
+				out = new BufferedOutputStream(new FileOutputStream(file, true));
+			}
+			if(fileBytes >= MAX_FILE_BYTES || now / ROLL_INTERVAL_MILLIS != filePeriod) {
+				closeQuietly();
+				// Two rolls within the same second need different names
+				File rolled = new File(LOG_DIRECTORY, LOG_NAME + "-" + rollFormat.format(new Date(now)) + ".log");
+				for(int i = 1; rolled.exists(); i++) rolled = new File(LOG_DIRECTORY, LOG_NAME + "-" + rollFormat.format(new Date(now)) + "-" + i + ".log");
+				if(!file.renameTo(rolled)) throw new IOException("Unable to roll " + file + " to " + rolled);
+				filePeriod = now / ROLL_INTERVAL_MILLIS;
+				fileBytes = 0;
+				out = new BufferedOutputStream(new FileOutputStream(file, true));
+			}
+			byte[] bytes = text.getBytes(UTF8);
+			out.write(bytes);
+			fileBytes += bytes.length;
+		}
+		
+		// Method to close the log file, ignoring any errors since there's nothing more to be done about them
+		private static void closeQuietly() {
+			try {
+				if(out != null) out.close();
+			} catch (IOException ex) {
+				// The file is being abandoned either way
+			}
+			out = null;
+		}
+		
+		// Method to format an event as a single key=value line, followed by its stack trace for errors
+		private static String format(Event logEvent) {
+			StringBuilder line = new StringBuilder(128);
+			line.append(timestampFormat.format(new Date(logEvent.timestamp)));
+			line.append(" level=").append(logEvent.level);
+			line.append(" handler=").append(logEvent.handler);
+			line.append(" channel=").append(logEvent.channel);
+			line.append(" nick=").append(logEvent.nick);
+			line.append(" latency_ms=").append(logEvent.latencyNanos / 1000000);
+			if(logEvent.message != null) line.append(" message=\"").append(logEvent.message.replace("\"", "\\\"")).append('"');
+			if(logEvent.error != null) {
+				line.append(" error=").append(logEvent.error.getClass().getName());
+				if(logEvent.suppressed > 0) line.append(" suppressed=").append(logEvent.suppressed);
+				line.append(" message=\"").append(String.valueOf(logEvent.error.getMessage()).replace("\"", "\\\"")).append('"');
+			}
+			line.append('\n');
+			if(logEvent.error != null) {
+				StringWriter trace = new StringWriter();
+				logEvent.error.printStackTrace(new PrintWriter(trace));
+				line.append(trace.toString().replaceAll("(?m)^", "\t"));
+			}
+			return line.toString();
+		}
+	}
+}
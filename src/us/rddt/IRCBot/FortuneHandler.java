@@ -29,7 +29,7 @@
 package us.rddt.IRCBot;
 
 import org.pircbotx.hooks.events.MessageEvent;
-import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
 
 public class FortuneHandler implements Runnable {
 	// Variables
@@ -52,13 +52,12 @@ public class FortuneHandler implements Runnable {
 		// If the length of the new array is 1, we assume the user only wants a Yes/No response
 		if(splitMessage.length == 1) {
 			// Generate a random number and use it to return the fortune
-			Random generator = new Random();
-			if(generator.nextInt(2) == 1) return "Yes";
+			// The shared per-thread generator avoids creating and seeding a new Random for every request
+			if(ThreadLocalRandom.current().nextInt(2) == 1) return "Yes";
 			else return "No";
 		} else {
 			// Generate a random number and use it to return a decision
-			Random generator = new Random();
-			return splitMessage[generator.nextInt(splitMessage.length)].replaceAll("^\\s+", "");
+			return splitMessage[ThreadLocalRandom.current().nextInt(splitMessage.length)].replaceAll("^\\s+", "");
 		}
 	}
 }
@@ -0,0 +1,133 @@
+/*
+ * This file is part of IRCBot.
+ * Copyright (c) 2011 Ryan Morrison
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions, and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions, and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *  * Neither the name of the author of this software nor the name of
+ *  contributors to this software may be used to endorse or promote products
+ *  derived from this software without specific prior written consent.
+ *  
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ *  AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ *  IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ *  ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ *  LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ *  CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ *  SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ *  INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ *  CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ *  ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ *  POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package us.rddt.IRCBot;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import org.pircbotx.hooks.events.MessageEvent;
+
+public class HandlerDispatcher {
+	// How expensive a handler is expected to be
+	public enum Cost {
+		// Pure computation that finishes in microseconds - cheaper to run than to hand to another thread
+		TRIVIAL,
+		// Waits on the network, the database or a timer and must never hold up the listener thread
+		BLOCKING
+	}
+	
+	// A trivial handler is moved off the listener thread once this many runs in a row take longer than the limit
+	private static final long INLINE_LIMIT_NANOS = 1000000;
+	private static final int SLOW_RUNS_TO_OFFLOAD = 3;
+	
+	// Pool of worker threads for offloaded handlers, reused instead of creating a new thread for every message
+	private final ExecutorService workers = Executors.newCachedThreadPool(new ThreadFactory() {
+		public Thread newThread(Runnable r) {
+			Thread thread = new Thread(r, "Handler worker");
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+	// Observed latency of each trivial handler run inline
+	private final ConcurrentHashMap<String, Profile> profiles = new ConcurrentHashMap<String, Profile>();
+	
+	// Method to run a handler inline on the listener thread or offload it to a worker, depending on its cost
+	public void dispatch(MessageEvent event, String name, Cost cost, Runnable handler) {
+		if(cost == Cost.BLOCKING) {
+			offload(event, name, handler);
+			return;
+		}
+		Profile profile = profiles.get(name);
+		if(profile == null) {
+			Profile created = new Profile();
+			profile = profiles.putIfAbsent(name, created);
+			if(profile == null) profile = created;
+		}
+		// The handler has proven slower than it claimed, so keep it off the listener thread
+		if(profile.offloaded) {
+			offload(event, name, handler);
+			return;
+		}
+		long startTime = System.nanoTime();
+		try {
+			handler.run();
+		} catch (RuntimeException ex) {
+			// Don't let a broken handler take the listener down with it
+			EventLog.error(name, event, startTime, ex);
+		} finally {
+			long latency = System.nanoTime() - startTime;
+			if(profile.record(latency)) {
+				EventLog.warn("HandlerDispatcher", name + " took over " + (INLINE_LIMIT_NANOS / 1000) + " us inline " + SLOW_RUNS_TO_OFFLOAD + " times in a row (last run " + (latency / 1000) + " us), offloading it to worker threads");
+			}
+		}
+	}
+	
+	// Method to run a handler on a worker thread, logging its failures the same way as an inline run
+	private void offload(final MessageEvent event, final String name, final Runnable handler) {
+		final long startTime = System.nanoTime();
+		workers.execute(new Runnable() {
+			public void run() {
+				try {
+					handler.run();
+				} catch (RuntimeException ex) {
+					// Otherwise the worker's default handler prints the stack trace to the console and nothing is logged
+					EventLog.error(name, event, startTime, ex);
+				}
+			}
+		});
+	}
+	
+	// Class tracking the latency of a handler run inline
+	private static final class Profile {
+		// Variables
+		private volatile boolean offloaded = false;
+		private boolean warmedUp = false;
+		private int slowRuns = 0;
+		
+		// Record a run's latency, returns true if this run caused the handler to be offloaded
+		private synchronized boolean record(long latency) {
+			// The first run pays for class loading and is no guide to how expensive the handler really is
+			if(!warmedUp) {
+				warmedUp = true;
+				return false;
+			}
+			if(offloaded) return false;
+			// An isolated slow run is usually a garbage collection pause, so only a streak of them counts
+			if(latency <= INLINE_LIMIT_NANOS) {
+				slowRuns = 0;
+				return false;
+			}
+			if(++slowRuns < SLOW_RUNS_TO_OFFLOAD) return false;
+			offloaded = true;
+			return true;
+		}
+	}
+}
@@ -35,36 +35,46 @@ import org.pircbotx.hooks.ListenerAdapter;
 import org.pircbotx.hooks.events.*;
 
 public class IRCBotHandlers extends ListenerAdapter {
+	// Runs cheap handlers inline and hands blocking ones to worker threads
+	private final HandlerDispatcher dispatcher = new HandlerDispatcher();
+	
 	// This handler is called upon receiving any message in a channel
 	public void onMessage(MessageEvent event) throws Exception {
-		// If the message is in upper case and not from ourselves, spawn a new thread to handle the shout
+		// Count the message towards the channel's statistics
+		ChannelStats.forChannel(event.getChannel().getName()).recordMessage();
+		// If the message is in upper case and not from ourselves, hand the shout to a worker thread
 		if(isUpperCase(event.getMessage()) && event.getMessage().length() > 5 && event.getUser() != event.getBot().getUserBot()) {
-			new Thread(new ShoutHandler(event, true)).start();
+			dispatcher.dispatch(event, "ShoutHandler", HandlerDispatcher.Cost.BLOCKING, new ShoutHandler(event, true));
 			return;
 		}
-		// If the message contains !who at the start, spawn a new thread to handle the request
+		// If the message contains !who at the start, hand the request to a worker thread
 		if(event.getMessage().substring(0, 4).equals("!who")) {
-			new Thread(new ShoutHandler(event)).start();
+			dispatcher.dispatch(event, "ShoutHandler", HandlerDispatcher.Cost.BLOCKING, new ShoutHandler(event));
+			return;
+		}
+		// Statistics and fortunes are answered from memory, so they're cheap enough to run inline
+		if(event.getMessage().startsWith("!stats")) {
+			dispatcher.dispatch(event, "StatsHandler", HandlerDispatcher.Cost.TRIVIAL, new StatsHandler(event));
 			return;
 		}
 		if(event.getMessage().substring(0, 7).equals("!decide")) {
-			new Thread(new FortuneHandler(event)).start();
+			dispatcher.dispatch(event, "FortuneHandler", HandlerDispatcher.Cost.TRIVIAL, new FortuneHandler(event));
 			return;
 		}
 		if(event.getMessage().substring(0, 9).equals("!votekick")) {
-			new Thread(new VotekickHandler(event)).start();
+			dispatcher.dispatch(event, "VotekickHandler", HandlerDispatcher.Cost.BLOCKING, new VotekickHandler(event));
 			return;
 		}
 		// Split the message using a space delimiter and attempt to form a URL from each split string
 		// If a MalformedURLException is thrown, the string isn't a valid URL and continue on
-		// If a URL can be formed from it, spawn a new thread to process it for a title
+		// If a URL can be formed from it, hand it to a worker thread to process it for a title
 		String[] splitMessage = event.getMessage().split(" ");
 		// We don't want to process more than 2 URLs at a time to prevent abuse and spam
 		int urlCount = 0;
 		for(int i = 0; i < splitMessage.length; i++) {
 			try {
 				URL url = new URL(splitMessage[i]);
-				new Thread(new URLGrabber(event, url)).start();
+				dispatcher.dispatch(event, "URLGrabber", HandlerDispatcher.Cost.BLOCKING, new URLGrabber(event, url));
 				urlCount++;
 			} catch (MalformedURLException ex) {
 				continue;
@@ -0,0 +1,424 @@
+/*
+ * This file is part of IRCBot.
+ * Copyright (c) 2011 Ryan Morrison
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions, and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions, and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *  * Neither the name of the author of this software nor the name of
+ *  contributors to this software may be used to endorse or promote products
+ *  derived from this software without specific prior written consent.
+ *  
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ *  AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ *  IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ *  ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ *  LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ *  CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ *  SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ *  INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ *  CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ *  ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ *  POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package us.rddt.IRCBot;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+public class MediaSniffer {
+	// Size of each pooled read buffer - large enough to hold any single header structure we need to look at
+	private static final int BUFFER_SIZE = 4096;
+	// Maximum number of buffers kept around for reuse between URL threads
+	private static final int MAX_POOLED_BUFFERS = 8;
+	// Shared pool of read buffers so each URL thread doesn't allocate its own
+	private static final ConcurrentLinkedQueue<byte[]> bufferPool = new ConcurrentLinkedQueue<byte[]>();
+	
+	// Maximum number of bytes we are willing to read for each format before giving up
+	public static final int PNG_MAX_BYTES = 24;
+	public static final int GIF_MAX_BYTES = 10;
+	public static final int WEBP_MAX_BYTES = 30;
+	public static final int JPEG_MAX_BYTES = 131072;
+	public static final int MP4_MAX_BYTES = 65536;
+	public static final int WEBM_MAX_BYTES = 65536;
+	
+	// Number of leading bytes needed to recognise any of the supported formats - the formats with the shortest
+	// signatures are checked first, so no format reads more of its header than its own cap allows
+	private static final int MAGIC_BYTES = 12;
+	
+	// EBML element IDs used by WebM/Matroska files
+	private static final int EBML_SEGMENT = 0x18538067;
+	private static final int EBML_INFO = 0x1549A966;
+	private static final int EBML_TIMECODE_SCALE = 0x2AD7B1;
+	private static final int EBML_DURATION = 0x4489;
+	private static final int EBML_TRACKS = 0x1654AE6B;
+	private static final int EBML_TRACK_ENTRY = 0xAE;
+	private static final int EBML_VIDEO = 0xE0;
+	private static final int EBML_PIXEL_WIDTH = 0xB0;
+	private static final int EBML_PIXEL_HEIGHT = 0xBA;
+	private static final int EBML_CLUSTER = 0x1F43B675;
+	
+	// Method to read the leading bytes of a media file and describe its dimensions and/or duration
+	// Returns null if the format isn't recognised or the information isn't within the byte cap
+	public static String sniff(InputStream in) {
+		byte[] buf = bufferPool.poll();
+		if(buf == null) buf = new byte[BUFFER_SIZE];
+		try {
+			SniffStream stream = new SniffStream(in, buf);
+			stream.setLimit(MAGIC_BYTES);
+			// Look at the magic bytes to determine the format, regardless of what the server claims the type is
+			// Each check only reads as many bytes as its signature needs
+			if(stream.matches(0, 0xFF, 0xD8, 0xFF)) {
+				stream.setLimit(JPEG_MAX_BYTES);
+				return sniffJpeg(stream);
+			}
+			if(stream.matches(0, 'G', 'I', 'F', '8')) {
+				stream.setLimit(GIF_MAX_BYTES);
+				return sniffGif(stream);
+			}
+			if(stream.matches(0, 0x1A, 0x45, 0xDF, 0xA3)) {
+				stream.setLimit(WEBM_MAX_BYTES);
+				return sniffWebm(stream);
+			}
+			if(stream.matches(0, 0x89, 'P', 'N', 'G', 0x0D, 0x0A, 0x1A, 0x0A)) {
+				stream.setLimit(PNG_MAX_BYTES);
+				return sniffPng(stream);
+			}
+			if(stream.matches(4, 'f', 't', 'y', 'p')) {
+				stream.setLimit(MP4_MAX_BYTES);
+				return sniffMp4(stream);
+			}
+			if(stream.matches(0, 'R', 'I', 'F', 'F') && stream.matches(8, 'W', 'E', 'B', 'P')) {
+				stream.setLimit(WEBP_MAX_BYTES);
+				return sniffWebp(stream);
+			}
+			return null;
+		} catch (IOException ex) {
+			// Either the stream ended early or the byte cap was hit, so there's nothing to report
+			return null;
+		} finally {
+			if(bufferPool.size() < MAX_POOLED_BUFFERS) bufferPool.offer(buf);
+		}
+	}
+	
+	// Method to extract the dimensions from a PNG file's IHDR chunk, which always directly follows the signature
+	static String sniffPng(SniffStream stream) throws IOException {
+		stream.skip(8);
+		stream.u32be();
+		if(!stream.matches(0, 'I', 'H', 'D', 'R')) return null;
+		stream.skip(4);
+		long width = stream.u32be();
+		long height = stream.u32be();
+		return formatDimensions(width, height);
+	}
+	
+	// Method to extract the logical screen dimensions from a GIF header
+	static String sniffGif(SniffStream stream) throws IOException {
+		stream.skip(6);
+		int width = stream.u16le();
+		int height = stream.u16le();
+		return formatDimensions(width, height);
+	}
+	
+	// Method to scan the JPEG marker segments until we reach a start of frame (SOFn) marker
+	static String sniffJpeg(SniffStream stream) throws IOException {
+		stream.skip(2);
+		while(true) {
+			// Every marker starts with at least one 0xFF fill byte
+			if(stream.u8() != 0xFF) return null;
+			int marker;
+			while((marker = stream.u8()) == 0xFF);
+			// Standalone markers have no length field
+			if(marker == 0x01 || (marker >= 0xD0 && marker <= 0xD7)) continue;
+			// End of image or start of scan without a frame header means there's nothing to find
+			if(marker == 0xD9 || marker == 0xDA) return null;
+			int length = stream.u16be();
+			if(length < 2) return null;
+			// SOF0 to SOF15, except DHT (C4), JPG (C8) and DAC (CC) which share the range
+			if(marker >= 0xC0 && marker <= 0xCF && marker != 0xC4 && marker != 0xC8 && marker != 0xCC) {
+				stream.u8();
+				int height = stream.u16be();
+				int width = stream.u16be();
+				return formatDimensions(width, height);
+			}
+			stream.skip(length - 2);
+		}
+	}
+	
+	// Method to extract the canvas dimensions from a WebP file (lossy, lossless or extended)
+	static String sniffWebp(SniffStream stream) throws IOException {
+		stream.skip(12);
+		if(stream.matches(0, 'V', 'P', '8', ' ')) {
+			// Lossy: 3 byte frame tag and 3 byte start code precede the 14-bit dimensions
+			stream.skip(14);
+			int width = stream.u16le() & 0x3FFF;
+			int height = stream.u16le() & 0x3FFF;
+			return formatDimensions(width, height);
+		}
+		if(stream.matches(0, 'V', 'P', '8', 'L')) {
+			// Lossless: a signature byte followed by two packed 14-bit dimensions, stored minus one
+			stream.skip(8);
+			if(stream.u8() != 0x2F) return null;
+			long bits = stream.u32le();
+			return formatDimensions((bits & 0x3FFF) + 1, ((bits >> 14) & 0x3FFF) + 1);
+		}
+		if(stream.matches(0, 'V', 'P', '8', 'X')) {
+			// Extended: flags and reserved bytes followed by two 24-bit dimensions, stored minus one
+			stream.skip(12);
+			int width = stream.u24le() + 1;
+			int height = stream.u24le() + 1;
+			return formatDimensions(width, height);
+		}
+		return null;
+	}
+	
+	// Method to walk the top-level MP4 boxes looking for the movie header and the first video track header
+	static String sniffMp4(SniffStream stream) throws IOException {
+		long duration = -1, width = 0, height = 0;
+		// Offset at which the movie box ends - there's nothing left to find past it
+		long moovEnd = -1;
+		while(true) {
+			// Everything we want has been found, so don't read any further into the sample tables
+			if(duration >= 0 && width > 0 && height > 0) return formatMedia(width, height, duration);
+			long boxStart = stream.position();
+			if(moovEnd >= 0 && boxStart >= moovEnd) return formatMedia(width, height, duration);
+			if(!stream.fill(8)) return formatMedia(width, height, duration);
+			long size = stream.u32be();
+			String type = stream.fourcc();
+			if(size == 1) size = stream.u64be();
+			else if(size == 0) size = Long.MAX_VALUE - boxStart;
+			long headerSize = stream.position() - boxStart;
+			if(size < headerSize) return null;
+			// The media data itself - if we haven't found the movie header yet, it lives after the data and is out of reach
+			if(type.equals("mdat")) return formatMedia(width, height, duration);
+			// Descend into the containers that hold the headers we want instead of skipping them
+			if(type.equals("moov") || type.equals("trak")) {
+				if(type.equals("moov")) moovEnd = boxStart + size;
+				continue;
+			}
+			if(type.equals("mvhd")) {
+				int version = stream.u8();
+				stream.skip(3);
+				long timescale, units;
+				if(version == 1) {
+					stream.skip(16);
+					timescale = stream.u32be();
+					units = stream.u64be();
+				} else {
+					stream.skip(8);
+					timescale = stream.u32be();
+					units = stream.u32be();
+				}
+				if(timescale > 0) duration = units / timescale;
+			}
+			else if(type.equals("tkhd") && width == 0) {
+				int version = stream.u8();
+				stream.skip(3);
+				// Skip the timestamps, track ID and duration, then the layer/volume fields and transformation matrix
+				stream.skip((version == 1 ? 32 : 20) + 52);
+				// Audio tracks report a zero size, so only the first video track sets the dimensions
+				width = stream.u32be() >> 16;
+				height = stream.u32be() >> 16;
+			}
+			try {
+				stream.skip(boxStart + size - stream.position());
+			} catch (EOFException ex) {
+				// The rest of the box is past the cap or the end of the stream, so report what was found before it
+				return formatMedia(width, height, duration);
+			}
+		}
+	}
+	
+	// Method to walk the EBML elements of a WebM file looking for the segment info and the first video track
+	static String sniffWebm(SniffStream stream) throws IOException {
+		long timecodeScale = 1000000, width = 0, height = 0;
+		double rawDuration = -1;
+		while(true) {
+			if(!stream.fill(2)) break;
+			int id = stream.ebmlId();
+			long size = stream.ebmlSize();
+			// Cluster elements hold the media data - all the metadata we want precedes them
+			if(id == EBML_CLUSTER) break;
+			// Descend into the master elements that hold the metadata we want instead of skipping them
+			if(id == EBML_SEGMENT || id == EBML_INFO || id == EBML_TRACKS || id == EBML_TRACK_ENTRY || id == EBML_VIDEO) continue;
+			// Every other element must have a known size for us to be able to skip or read it
+			if(size < 0) return null;
+			try {
+				if(id == EBML_TIMECODE_SCALE) timecodeScale = stream.unsigned((int)size);
+				else if(id == EBML_DURATION && size == 4) rawDuration = Float.intBitsToFloat((int)stream.u32be());
+				else if(id == EBML_DURATION && size == 8) rawDuration = Double.longBitsToDouble(stream.u64be());
+				else if(id == EBML_PIXEL_WIDTH && width == 0) width = stream.unsigned((int)size);
+				else if(id == EBML_PIXEL_HEIGHT && height == 0) height = stream.unsigned((int)size);
+				else stream.skip(size);
+			} catch (EOFException ex) {
+				// The rest of the element is past the cap or the end of the stream, so report what was found before it
+				break;
+			}
+			if(rawDuration >= 0 && width > 0 && height > 0) break;
+		}
+		long duration = rawDuration < 0 ? -1 : (long)(rawDuration * timecodeScale / 1000000000.0);
+		return formatMedia(width, height, duration);
+	}
+	
+	// Method to format a pair of dimensions for display
+	private static String formatDimensions(long width, long height) {
+		if(width <= 0 || height <= 0) return null;
+		return width + "x" + height;
+	}
+	
+	// Method to format the dimensions and/or duration of a video for display
+	private static String formatMedia(long width, long height, long duration) {
+		String dimensions = formatDimensions(width, height);
+		if(duration < 0) return dimensions;
+		String time;
+		if(duration >= 3600) time = String.format("%d:%02d:%02d", duration / 3600, (duration / 60) % 60, duration % 60);
+		else time = String.format("%d:%02d", duration / 60, duration % 60);
+		if(dimensions == null) return "duration: " + time;
+		return dimensions + ", duration: " + time;
+	}
+	
+	// Class for reading a capped number of bytes from a stream through a pooled buffer
+	static final class SniffStream {
+		// Variables
+		private final InputStream in;
+		private final byte[] buf;
+		private int pos = 0, count = 0;
+		private long consumed = 0;
+		private long limit = Long.MAX_VALUE;
+		private boolean eof = false;
+		
+		// Constructor for the SniffStream class
+		SniffStream(InputStream in, byte[] buf) {
+			this.in = in;
+			this.buf = buf;
+		}
+		
+		// Set the maximum number of bytes that may be read from the start of the stream
+		void setLimit(long limit) {
+			this.limit = limit;
+		}
+		
+		// Returns the number of bytes consumed from the start of the stream
+		long position() {
+			return consumed;
+		}
+		
+		// Ensure at least n bytes are buffered ahead of the current position, returns false if they can't be
+		// Never reads more than n bytes ahead, so the number of bytes taken from the stream is exactly what was needed
+		boolean fill(int n) throws IOException {
+			if(consumed + n > limit) return false;
+			if(count - pos >= n) return true;
+			// Move the unread bytes to the front of the buffer before reading more
+			if(pos > 0) {
+				System.arraycopy(buf, pos, buf, 0, count - pos);
+				count -= pos;
+				pos = 0;
+			}
+			while(!eof && count < n) {
+				int read = in.read(buf, count, n - count);
+				if(read == -1) eof = true;
+				else count += read;
+			}
+			return count >= n;
+		}
+		
+		// Compare the buffered bytes at the given offset against a magic byte sequence
+		boolean matches(int offset, int... magic) throws IOException {
+			if(!fill(offset + magic.length)) return false;
+			for(int i = 0; i < magic.length; i++) {
+				if((buf[pos + offset + i] & 0xFF) != magic[i]) return false;
+			}
+			return true;
+		}
+		
+		// Skip over n bytes, throwing an EOFException if that would pass the cap or the end of the stream
+		void skip(long n) throws IOException {
+			if(n < 0 || consumed + n > limit) throw new EOFException("Byte cap reached");
+			while(n > 0) {
+				// Skipped bytes still have to be read, but only as many as are being skipped
+				if(pos == count && !fill((int)Math.min(n, buf.length))) throw new EOFException("Unexpected end of stream");
+				int step = (int)Math.min(n, count - pos);
+				pos += step;
+				consumed += step;
+				n -= step;
+			}
+		}
+		
+		// Read a single unsigned byte
+		int u8() throws IOException {
+			if(!fill(1)) throw new EOFException("Unexpected end of stream or byte cap reached");
+			consumed++;
+			return buf[pos++] & 0xFF;
+		}
+		
+		// Read a big-endian unsigned value of the given number of bytes (up to 8)
+		long unsigned(int bytes) throws IOException {
+			if(bytes < 0 || bytes > 8) throw new IOException("Invalid integer size: " + bytes);
+			long value = 0;
+			for(int i = 0; i < bytes; i++) value = (value << 8) | u8();
+			return value;
+		}
+		
+		// Fixed size big and little endian readers built on top of the above
+		int u16be() throws IOException {
+			return (int)unsigned(2);
+		}
+		
+		long u32be() throws IOException {
+			return unsigned(4);
+		}
+		
+		long u64be() throws IOException {
+			return unsigned(8);
+		}
+		
+		int u16le() throws IOException {
+			return u8() | (u8() << 8);
+		}
+		
+		int u24le() throws IOException {
+			return u8() | (u8() << 8) | (u8() << 16);
+		}
+		
+		long u32le() throws IOException {
+			return u24le() | ((long)u8() << 24);
+		}
+		
+		// Read a four character code, such as an MP4 box type
+		String fourcc() throws IOException {
+			return new String(new char[] { (char)u8(), (char)u8(), (char)u8(), (char)u8() });
+		}
+		
+		// Read an EBML element ID, keeping the length marker bits as the specification does
+		int ebmlId() throws IOException {
+			int first = u8();
+			int length = Integer.numberOfLeadingZeros(first) - 23;
+			if(length > 4) throw new IOException("Invalid EBML element ID");
+			int id = first;
+			for(int i = 1; i < length; i++) id = (id << 8) | u8();
+			return id;
+		}
+		
+		// Read an EBML element size, returning -1 if the size is unknown
+		long ebmlSize() throws IOException {
+			int first = u8();
+			int length = Integer.numberOfLeadingZeros(first) - 23;
+			if(length > 8) throw new IOException("Invalid EBML element size");
+			long size = first & (0xFF >> length);
+			boolean unknown = size == (0xFF >> length);
+			for(int i = 1; i < length; i++) {
+				int next = u8();
+				if(next != 0xFF) unknown = false;
+				size = (size << 8) | next;
+			}
+			return unknown ? -1 : size;
+		}
+	}
+}
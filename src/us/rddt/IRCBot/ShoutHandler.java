@@ -31,6 +31,8 @@ package us.rddt.IRCBot;
 import org.pircbotx.hooks.events.MessageEvent;
 import java.sql.*;
 import java.util.Date;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
 
 public class ShoutHandler implements Runnable {
 	// Variables
@@ -45,8 +47,36 @@ public class ShoutHandler implements Runnable {
 	// We need this variable to be accessible from other threads, so we make it static and volatile
 	private static volatile String lastQuote = "";
 	
+	// Recently retrieved quotes for each channel, used to shout back when the database is unavailable
+	private static final int CACHED_QUOTES = 16;
+	private static final ConcurrentHashMap<String, String[]> quoteCache = new ConcurrentHashMap<String, String[]>();
+	
+	// How long to wait for a place in the database bulkhead when the database is healthy but busy
+	private static final long BULKHEAD_WAIT_MILLIS = 10000;
+	
 	// Method that executes upon start of thread
 	public void run() {
+		long startTime = System.nanoTime();
+		if(isRandomShout) ChannelStats.forChannel(event.getChannel().getName()).recordShout(event.getUser().getNick());
+		// Fail fast if the database is unavailable, but wait our turn if it's only busy with other shouts
+		CircuitBreaker.Call call;
+		try {
+			call = Database.breaker.acquire(BULKHEAD_WAIT_MILLIS);
+		} catch (CircuitBreaker.RejectedException ex) {
+			// Record that the quote couldn't be stored
+			EventLog.error("ShoutHandler", event, startTime, ex);
+			if(isRandomShout) {
+				// Shout back with a quote we've seen before instead so the channel won't notice
+				String cachedQuote = getCachedQuote();
+				if(cachedQuote != null) event.getBot().sendMessage(event.getChannel(), cachedQuote);
+			} else if(ex.isCircuitOpen()) {
+				event.respond("The quote database is unavailable right now, try again later.");
+			} else {
+				event.respond("The quote database is busy right now, try again later.");
+			}
+			return;
+		}
+		boolean succeeded = false;
 		try {
 			// Connect to the database
 			connect();
@@ -64,9 +94,12 @@ public class ShoutHandler implements Runnable {
 			}
 			// Disconnect from the database
 			disconnect();
+			succeeded = true;
+			EventLog.success("ShoutHandler", event, startTime);
 		} catch (Exception ex) {
-			// TODO: Better exception handling
-			ex.printStackTrace();
+			EventLog.error("ShoutHandler", event, startTime, ex);
+		} finally {
+			Database.breaker.release(call, succeeded);
 		}
 	}
 	
@@ -83,8 +116,7 @@ public class ShoutHandler implements Runnable {
 	
 	// Method to connect to the database
 	private void connect() throws SQLException, ClassNotFoundException {
-		Class.forName("com.mysql.jdbc.Driver");
-		connect = DriverManager.getConnection("jdbc:mysql://localhost/irc_shouts?user=ircbot&password=milkircbot");
+		connect = Database.getConnection();
 		statement = connect.createStatement();
 	}
 	
@@ -109,6 +141,7 @@ public class ShoutHandler implements Runnable {
 			synchronized(lastQuote) {
 				lastQuote = resultSet.getString("Quote");
 			}
+			cacheQuote(resultSet.getString("Quote"));
 			// Return the random quote
 			return resultSet.getString("Quote");
 		} else {
@@ -117,6 +150,38 @@ public class ShoutHandler implements Runnable {
 		}
 	}
 	
+	// Method to remember a quote retrieved from the database, replacing a random cached quote once the cache is full
+	private void cacheQuote(String quote) {
+		String[] cache = quoteCache.get(event.getChannel().getName());
+		if(cache == null) {
+			String[] created = new String[CACHED_QUOTES];
+			cache = quoteCache.putIfAbsent(event.getChannel().getName(), created);
+			if(cache == null) cache = created;
+		}
+		synchronized(cache) {
+			for(int i = 0; i < cache.length; i++) {
+				if(quote.equals(cache[i])) return;
+				if(cache[i] == null) {
+					cache[i] = quote;
+					return;
+				}
+			}
+			cache[ThreadLocalRandom.current().nextInt(cache.length)] = quote;
+		}
+	}
+	
+	// Method to pick a random quote from those previously retrieved for the channel, returns null if there are none
+	private String getCachedQuote() {
+		String[] cache = quoteCache.get(event.getChannel().getName());
+		if(cache == null) return null;
+		synchronized(cache) {
+			int cached = 0;
+			while(cached < cache.length && cache[cached] != null) cached++;
+			if(cached == 0) return null;
+			return cache[ThreadLocalRandom.current().nextInt(cached)];
+		}
+	}
+	
 	// Method to check if a quote exists
 	private boolean doesQuoteExist() throws SQLException {
 		// Again, prepared statements to sanitize input
@@ -0,0 +1,54 @@
+/*
+ * This file is part of IRCBot.
+ * Copyright (c) 2011 Ryan Morrison
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions, and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions, and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *  * Neither the name of the author of this software nor the name of
+ *  contributors to this software may be used to endorse or promote products
+ *  derived from this software without specific prior written consent.
+ *  
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ *  AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ *  IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ *  ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ *  LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ *  CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ *  SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ *  INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ *  CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ *  ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ *  POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package us.rddt.IRCBot;
+
+import org.pircbotx.hooks.events.MessageEvent;
+
+public class StatsHandler implements Runnable {
+	// Variables
+	private MessageEvent event;
+	
+	// Method that executes upon start of thread
+	public void run() {
+		// Everything is answered from the in-memory statistics, so there's no need to touch the database
+		ChannelStats stats = ChannelStats.forChannel(event.getChannel().getName());
+		String request = event.getMessage().substring(6).trim();
+		if(request.equals("shouters")) event.respond(stats.getTopShouters());
+		else if(request.equals("links")) event.respond(stats.getTopLinkers());
+		else if(request.equals("hours")) event.respond(stats.getBusiestHours());
+		else if(request.equals("votekicks")) event.respond(stats.getVotekickOutcomes());
+		else if(request.equals("breakers")) event.respond(CircuitBreaker.getAllMetrics(Database.breaker));
+		else event.respond(stats.getSummary());
+	}
+	
+	// Class constructor
+	public StatsHandler(MessageEvent event) {
+		this.event = event;
+	}
+}
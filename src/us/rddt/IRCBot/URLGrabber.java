@@ -30,9 +30,15 @@ package us.rddt.IRCBot;
 
 import org.apache.commons.lang3.StringEscapeUtils;
 import java.io.BufferedReader;
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.math.RoundingMode;
+import java.net.ConnectException;
+import java.net.HttpURLConnection;
+import java.net.NoRouteToHostException;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
 import java.net.URL;
 import java.net.URLConnection;
 import java.nio.charset.Charset;
@@ -50,14 +56,36 @@ public class URLGrabber implements Runnable {
 	// Regex pattern to match the HTML title tag to extract from the URL
 	private static final Pattern TITLE_TAG = Pattern.compile("\\<title>(.*)\\</title>", Pattern.CASE_INSENSITIVE|Pattern.DOTALL);
 	
+	// How long to wait for a place in the host's bulkhead when the host is healthy but busy with our other requests
+	private static final long BULKHEAD_WAIT_MILLIS = 10000;
+	
 	// Method that executes upon start of thread
 	public void run() {
+		long startTime = System.nanoTime();
+		ChannelStats.forChannel(event.getChannel().getName()).recordLink(event.getUser().getNick());
+		// Fail fast if the host has been failing, but wait our turn if it's only busy with our other requests
+		CircuitBreaker breaker = CircuitBreaker.forHost(url.getHost());
+		CircuitBreaker.Call call;
+		try {
+			call = breaker.acquire(BULKHEAD_WAIT_MILLIS);
+		} catch (CircuitBreaker.RejectedException ex) {
+			if(ex.isCircuitOpen()) event.getBot().sendMessage(event.getChannel(), ("[URL by '" + event.getUser().getNick() + "'] Skipped - " + url.getHost() + " isn't responding right now."));
+			else event.getBot().sendMessage(event.getChannel(), ("[URL by '" + event.getUser().getNick() + "'] Skipped - too many links to " + url.getHost() + " are already being retrieved."));
+			return;
+		}
+		boolean hostHealthy = false;
 		try {
-			event.getBot().sendMessage(event.getChannel(), ("[URL by '" + event.getUser().getNick() + "'] " + getPageTitle(url)));
+			String title = getPageTitle(url);
+			hostHealthy = true;
+			event.getBot().sendMessage(event.getChannel(), ("[URL by '" + event.getUser().getNick() + "'] " + title));
+			EventLog.success("URLGrabber", event, startTime);
 		} catch (Exception ex) {
-			// TODO: Better exception handling
-			ex.printStackTrace();
+			// A bad link (a 404, missing headers) isn't the host's fault, so only count errors that say the host is unwell
+			hostHealthy = !isHostFailure(ex);
+			EventLog.error("URLGrabber", event, startTime, ex);
 			event.getBot().sendMessage(event.getChannel(), ("[URL by '" + event.getUser().getNick() + "'] An error occurred while retrieving this URL. (" + ex.getMessage() + ")"));
+		} finally {
+			breaker.release(call, hostHealthy);
 		}
 	}
 	
@@ -74,11 +102,30 @@ public class URLGrabber implements Runnable {
 		URLConnection conn = url.openConnection();
 		// Set a proper user agent, some sites return HTTP 409 without it
 		conn.setRequestProperty("User-Agent", "Mozilla/5.0 (Windows NT 6.1; rv:6.0) Gecko/20110814 Firefox/6.0");
+		// We only ever read the start of the response, so ask the server not to keep the connection alive
+		// Otherwise Java quietly downloads up to 512 KB of the rest after we close the stream, hoping to reuse it
+		conn.setRequestProperty("Connection", "close");
+		// Don't let a dead or slow host hold this thread forever
+		conn.setConnectTimeout(5000);
+		conn.setReadTimeout(5000);
+		// A server error says the host itself is in trouble, as opposed to the link being bad
+		if(conn instanceof HttpURLConnection && ((HttpURLConnection)conn).getResponseCode() >= 500) {
+			throw new ServerErrorException(((HttpURLConnection)conn).getResponseCode());
+		}
 		// Get the Content-Type property from the HTTP headers so we can parse accordingly
 		ContentType contentType = getContentTypeHeader(conn);
 		// If the document isn't HTML, return the Content-Type and Content-Length instead
 		if(!contentType.contentType.equals("text/html")) {
-			return "Type: " + contentType.contentType + ", length: " + humanReadableByteCount(getContentLengthHeader(conn), true);
+			String summary = "Type: " + contentType.contentType + ", length: " + humanReadableByteCount(getContentLengthHeader(conn), true);
+			// For images and videos, sniff the first few bytes of the file for its dimensions and duration
+			if(contentType.contentType.startsWith("image/") || contentType.contentType.startsWith("video/")) {
+				InputStream in = conn.getInputStream();
+				String media = MediaSniffer.sniff(in);
+				// Close the stream, which drops the connection so the rest of the file isn't downloaded
+				in.close();
+				if(media != null) summary += ", " + media;
+			}
+			return summary;
 		}
 		else {
 			// Get the character set or use the default accordingly
@@ -114,6 +161,21 @@ public class URLGrabber implements Runnable {
 		}
 	}
 	
+	// Method to determine whether an exception means the host is unhealthy rather than the link being bad
+	private static boolean isHostFailure(Exception ex) {
+		return ex instanceof SocketTimeoutException || ex instanceof ConnectException || ex instanceof NoRouteToHostException
+				|| ex instanceof UnknownHostException || ex instanceof ServerErrorException;
+	}
+	
+	// Exception thrown when the server responds with a 5xx status code
+	private static final class ServerErrorException extends IOException {
+		private static final long serialVersionUID = 1L;
+		
+		private ServerErrorException(int responseCode) {
+			super("Server returned HTTP " + responseCode);
+		}
+	}
+	
 	// Method to extract the Content-Type property from the HTTP response
 	private static ContentType getContentTypeHeader(URLConnection conn) {
 		// Variables
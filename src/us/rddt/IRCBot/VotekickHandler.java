@@ -45,6 +45,7 @@ public class VotekickHandler implements Runnable {
 	
 	// Method that executes upon start of thread
 	public void run() {
+		long startTime = System.nanoTime();
 		// There is no votekick in progress
 		if(votekickUser.equals("")) {
 			// Set the current votekick user
@@ -61,17 +62,19 @@ public class VotekickHandler implements Runnable {
 			}
 			// Add the vote starter as a voted user
 			votedUsers.add(event.getUser().getNick());
+			ChannelStats.forChannel(event.getChannel().getName()).recordVotekickStarted();
 			// Announce the votekick
 			event.getBot().sendMessage(event.getChannel(), event.getUser().getNick() + " has voted to kick " + votekickUser + "! Type !votekick " + votekickUser + " to cast a vote. (" + requiredVotes + " needed)");
 			// Sleep for a certain period of time.
 			try {
 				Thread.sleep(60000);
 			} catch (InterruptedException ex) {
-				ex.printStackTrace();
+				EventLog.error("VotekickHandler", event, startTime, ex);
 			}
 			// See if the vote has reached a conclusion. If not, fail and reset the vote.
 			if(!votekickUser.equals("")) {
 				event.getBot().sendMessage(event.getChannel(), "The vote to kick " + votekickUser + " has failed! (" + requiredVotes + " more needed)");
+				ChannelStats.forChannel(event.getChannel().getName()).recordVotekickResult(false);
 				resetKick();
 			}
 		}
@@ -92,6 +95,7 @@ public class VotekickHandler implements Runnable {
 			if(requiredVotes == 0) {
 				event.getBot().sendMessage(event.getChannel(), "Vote succeeded - kicking " + votekickUser + "!");
 				event.getBot().kick(event.getChannel(), event.getBot().getUser(votekickUser));
+				ChannelStats.forChannel(event.getChannel().getName()).recordVotekickResult(true);
 				resetKick();
 			}
 		}
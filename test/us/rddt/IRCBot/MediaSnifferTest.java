@@ -0,0 +1,278 @@
+/*
+ * This file is part of IRCBot.
+ * Copyright (c) 2011 Ryan Morrison
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions, and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions, and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *  * Neither the name of the author of this software nor the name of
+ *  contributors to this software may be used to endorse or promote products
+ *  derived from this software without specific prior written consent.
+ *  
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ *  AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ *  IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ *  ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ *  LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ *  CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ *  SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ *  INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ *  CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ *  ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ *  POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package us.rddt.IRCBot;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+// Fixture based tests for MediaSniffer, runnable without a build system:
+//   javac -d out src/us/rddt/IRCBot/MediaSniffer.java test/us/rddt/IRCBot/MediaSnifferTest.java
+//   java -ea -cp out us.rddt.IRCBot.MediaSnifferTest
+public class MediaSnifferTest {
+	// Variables
+	private static int passed = 0, failed = 0;
+	
+	public static void main(String[] args) {
+		testPng();
+		testGif();
+		testJpeg();
+		testWebp();
+		testMp4();
+		testWebm();
+		testUnknown();
+		System.out.println(passed + " passed, " + failed + " failed");
+		if(failed > 0) System.exit(1);
+	}
+	
+	private static void testPng() {
+		byte[] png = png(640, 480);
+		check("PNG dimensions", png, "640x480", MediaSniffer.PNG_MAX_BYTES);
+		check("PNG truncated", Arrays.copyOf(png, 20), null, MediaSniffer.PNG_MAX_BYTES);
+		// A chunk other than IHDR directly after the signature isn't a valid PNG
+		byte[] bad = png.clone();
+		bad[12] = 'X';
+		check("PNG without IHDR", bad, null, MediaSniffer.PNG_MAX_BYTES);
+	}
+	
+	private static void testGif() {
+		byte[] gif = new Bytes().ascii("GIF89a").le16(320).le16(200).zeros(50).toArray();
+		check("GIF dimensions", gif, "320x200", MediaSniffer.GIF_MAX_BYTES);
+		check("GIF87a dimensions", new Bytes().ascii("GIF87a").le16(1).le16(65535).toArray(), "1x65535", MediaSniffer.GIF_MAX_BYTES);
+		check("GIF truncated", Arrays.copyOf(gif, 8), null, MediaSniffer.GIF_MAX_BYTES);
+	}
+	
+	private static void testJpeg() {
+		// SOF0 after an EXIF segment, a quantisation table and some fill bytes
+		byte[] jpeg = new Bytes().u8(0xFF, 0xD8).segment(0xE1, 5000).segment(0xDB, 64).u8(0xFF)
+				.u8(0xFF, 0xC0).be16(17).u8(8).be16(1080).be16(1920).u8(3).zeros(9).u8(0xFF, 0xDA).toArray();
+		check("JPEG dimensions", jpeg, "1920x1080", MediaSniffer.JPEG_MAX_BYTES);
+		// Progressive (SOF2) frames are found too, while DHT (C4) shares the SOF range but must be skipped
+		byte[] progressive = new Bytes().u8(0xFF, 0xD8).segment(0xC4, 30)
+				.u8(0xFF, 0xC2).be16(17).u8(8).be16(600).be16(800).u8(3).zeros(9).toArray();
+		check("JPEG progressive", progressive, "800x600", MediaSniffer.JPEG_MAX_BYTES);
+		check("JPEG scan before frame", new Bytes().u8(0xFF, 0xD8).segment(0xE0, 16).u8(0xFF, 0xDA).zeros(100).toArray(), null, MediaSniffer.JPEG_MAX_BYTES);
+		check("JPEG truncated", Arrays.copyOf(jpeg, 3000), null, MediaSniffer.JPEG_MAX_BYTES);
+		// Segments adding up to more than the cap hide the frame header, and the cap is never exceeded
+		Bytes large = new Bytes().u8(0xFF, 0xD8);
+		for(int i = 0; i < 3; i++) large.segment(0xE2, 65000);
+		large.u8(0xFF, 0xC0).be16(17).u8(8).be16(10).be16(10).u8(3).zeros(9);
+		check("JPEG over cap", large.toArray(), null, MediaSniffer.JPEG_MAX_BYTES);
+	}
+	
+	private static void testWebp() {
+		byte[] lossy = new Bytes().ascii("RIFF").le32(200).ascii("WEBP").ascii("VP8 ").le32(100)
+				.zeros(3).u8(0x9D, 0x01, 0x2A).le16(800).le16(600).zeros(80).toArray();
+		check("WebP lossy", lossy, "800x600", MediaSniffer.WEBP_MAX_BYTES);
+		int bits = (1000 - 1) | ((700 - 1) << 14);
+		byte[] lossless = new Bytes().ascii("RIFF").le32(200).ascii("WEBP").ascii("VP8L").le32(50)
+				.u8(0x2F).le32(bits).zeros(50).toArray();
+		check("WebP lossless", lossless, "1000x700", MediaSniffer.WEBP_MAX_BYTES);
+		byte[] extended = new Bytes().ascii("RIFF").le32(200).ascii("WEBP").ascii("VP8X").le32(10)
+				.zeros(4).le24(4000 - 1).le24(3000 - 1).zeros(50).toArray();
+		check("WebP extended", extended, "4000x3000", MediaSniffer.WEBP_MAX_BYTES);
+		check("WebP truncated", Arrays.copyOf(lossy, 27), null, MediaSniffer.WEBP_MAX_BYTES);
+	}
+	
+	private static void testMp4() {
+		byte[] ftyp = box("ftyp", new Bytes().ascii("isom").zeros(8).toArray());
+		byte[] mvhd = box("mvhd", new Bytes().zeros(4).zeros(8).be32(1000).be32(205000).zeros(80).toArray());
+		// An audio track with no dimensions comes before the video track
+		byte[] moov = box("moov", concat(mvhd, box("trak", concat(tkhd(0, 0), box("mdia", new byte[30]))), box("trak", tkhd(1280, 720))));
+		byte[] mdat = box("mdat", new byte[100000]);
+		check("MP4 dimensions and duration", concat(ftyp, moov, mdat), "1280x720, duration: 3:25", MediaSniffer.MP4_MAX_BYTES);
+		// Version 1 movie headers use 64-bit times
+		byte[] mvhd64 = box("mvhd", new Bytes().u8(1).zeros(3).zeros(16).be32(600).be64(600L * 3725).zeros(80).toArray());
+		check("MP4 64-bit header", concat(ftyp, box("moov", mvhd64)), "duration: 1:02:05", MediaSniffer.MP4_MAX_BYTES);
+		// The movie header is after the media data and out of reach without downloading the file
+		check("MP4 movie header at end", concat(ftyp, mdat, moov), null, 28);
+		check("MP4 truncated", Arrays.copyOf(concat(ftyp, moov), 40), null, MediaSniffer.MP4_MAX_BYTES);
+		// Metadata boxes larger than the cap are never read past it
+		check("MP4 over cap", concat(ftyp, box("free", new byte[100000]), moov), null, MediaSniffer.MP4_MAX_BYTES);
+		// Sample tables of a long fast-start video go past the cap, but everything needed comes before them
+		byte[] longMoov = box("moov", concat(mvhd, box("trak", concat(tkhd(1280, 720), box("mdia", new byte[MediaSniffer.MP4_MAX_BYTES + 100000])))));
+		check("MP4 large sample tables", concat(ftyp, longMoov, mdat), "1280x720, duration: 3:25", MediaSniffer.MP4_MAX_BYTES);
+		// An audio track with large sample tables still leaves the duration
+		byte[] audioMoov = box("moov", concat(mvhd, box("trak", concat(tkhd(0, 0), box("mdia", new byte[MediaSniffer.MP4_MAX_BYTES + 100000])))));
+		check("MP4 large audio sample tables", concat(ftyp, audioMoov, mdat), "duration: 3:25", MediaSniffer.MP4_MAX_BYTES);
+	}
+	
+	private static void testWebm() {
+		byte[] header = element(0x1A45DFA3, element(0x4282, ascii("webm")));
+		byte[] info = element(0x1549A966, concat(element(0x2AD7B1, new Bytes().be24(1000000).toArray()), element(0x4489, new Bytes().be64(Double.doubleToLongBits(3725000.0)).toArray())));
+		byte[] tracks = element(0x1654AE6B, element(0xAE, element(0xE0, concat(element(0xB0, new Bytes().be16(854).toArray()), element(0xBA, new Bytes().be16(480).toArray())))));
+		// Segments being streamed are written with an unknown size
+		byte[] segment = concat(new Bytes().be32(0x18538067).u8(0x01, 0xFF, 0xFF, 0xFF, 0xFF, 0xFF, 0xFF, 0xFF).toArray(), info, tracks, element(0x1F43B675, new byte[100]));
+		check("WebM dimensions and duration", concat(header, segment), "854x480, duration: 1:02:05", MediaSniffer.WEBM_MAX_BYTES);
+		// A 32-bit float duration with a non-default timecode scale
+		byte[] info32 = element(0x1549A966, concat(element(0x2AD7B1, new Bytes().be24(500000).toArray()), element(0x4489, new Bytes().be32(Float.floatToIntBits(120000f)).toArray())));
+		check("WebM float duration", concat(header, element(0x18538067, info32)), "duration: 1:00", MediaSniffer.WEBM_MAX_BYTES);
+		check("WebM truncated", Arrays.copyOf(concat(header, segment), 30), null, MediaSniffer.WEBM_MAX_BYTES);
+		// A large element between Info and Tracks hides the tracks, but the duration is still reported
+		check("WebM large element after Info", concat(header, element(0x18538067, concat(info, element(0xEC, new byte[MediaSniffer.WEBM_MAX_BYTES + 10000]), tracks))), "duration: 1:02:05", MediaSniffer.WEBM_MAX_BYTES);
+		check("WebM over cap", concat(header, element(0x18538067, concat(element(0xEC, new byte[70000]), info, tracks))), null, MediaSniffer.WEBM_MAX_BYTES);
+	}
+	
+	private static void testUnknown() {
+		check("Unknown format", ascii("<html><head><title>Not media</title>"), null, 12);
+		check("Empty stream", new byte[0], null, 0);
+	}
+	
+	// Sniff a fixture and check both the result and the number of bytes read from the stream
+	private static void check(String name, byte[] fixture, String expected, int maxBytes) {
+		CountingInputStream in = new CountingInputStream(new ByteArrayInputStream(fixture));
+		String actual = MediaSniffer.sniff(in);
+		boolean ok = (expected == null ? actual == null : expected.equals(actual)) && in.count <= maxBytes;
+		if(ok) {
+			passed++;
+		} else {
+			failed++;
+			System.out.println("FAIL " + name + ": expected " + expected + " within " + maxBytes + " bytes, got " + actual + " after " + in.count + " bytes");
+		}
+	}
+	
+	// Fixture builders
+	private static byte[] png(int width, int height) {
+		return new Bytes().u8(0x89, 'P', 'N', 'G', 0x0D, 0x0A, 0x1A, 0x0A).be32(13).ascii("IHDR")
+				.be32(width).be32(height).u8(8, 2, 0, 0, 0).zeros(4).zeros(100).toArray();
+	}
+	
+	private static byte[] tkhd(int width, int height) {
+		return box("tkhd", new Bytes().zeros(4).zeros(20).zeros(52).be32(width << 16).be32(height << 16).toArray());
+	}
+	
+	private static byte[] box(String type, byte[] content) {
+		return new Bytes().be32(content.length + 8).ascii(type).bytes(content).toArray();
+	}
+	
+	// Build an EBML element, using a 4 byte size so any length up to 256 MB fits
+	private static byte[] element(int id, byte[] content) {
+		Bytes bytes = new Bytes();
+		if(id > 0xFFFFFF) bytes.be32(id);
+		else if(id > 0xFFFF) bytes.be24(id);
+		else if(id > 0xFF) bytes.be16(id);
+		else bytes.u8(id);
+		return bytes.be32(0x10000000 | content.length).bytes(content).toArray();
+	}
+	
+	private static byte[] ascii(String s) {
+		return new Bytes().ascii(s).toArray();
+	}
+	
+	private static byte[] concat(byte[]... parts) {
+		Bytes bytes = new Bytes();
+		for(byte[] part : parts) bytes.bytes(part);
+		return bytes.toArray();
+	}
+	
+	// Class for building byte array fixtures
+	private static final class Bytes {
+		private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		
+		Bytes u8(int... values) {
+			for(int value : values) out.write(value);
+			return this;
+		}
+		
+		Bytes be16(int value) {
+			return u8(value >> 8, value);
+		}
+		
+		Bytes be24(int value) {
+			return u8(value >> 16, value >> 8, value);
+		}
+		
+		Bytes be32(int value) {
+			return u8(value >>> 24, value >> 16, value >> 8, value);
+		}
+		
+		Bytes be64(long value) {
+			return be32((int)(value >>> 32)).be32((int)value);
+		}
+		
+		Bytes le16(int value) {
+			return u8(value, value >> 8);
+		}
+		
+		Bytes le24(int value) {
+			return u8(value, value >> 8, value >> 16);
+		}
+		
+		Bytes le32(int value) {
+			return u8(value, value >> 8, value >> 16, value >>> 24);
+		}
+		
+		Bytes ascii(String s) {
+			for(int i = 0; i < s.length(); i++) out.write(s.charAt(i));
+			return this;
+		}
+		
+		Bytes zeros(int n) {
+			return bytes(new byte[n]);
+		}
+		
+		Bytes bytes(byte[] b) {
+			out.write(b, 0, b.length);
+			return this;
+		}
+		
+		// A JPEG marker segment with the given number of payload bytes
+		Bytes segment(int marker, int length) {
+			return u8(0xFF, marker).be16(length + 2).zeros(length);
+		}
+		
+		byte[] toArray() {
+			return out.toByteArray();
+		}
+	}
+	
+	// Class counting how many bytes have been read from a stream
+	private static final class CountingInputStream extends FilterInputStream {
+		private long count = 0;
+		
+		CountingInputStream(InputStream in) {
+			super(in);
+		}
+		
+		public int read() throws IOException {
+			int b = super.read();
+			if(b != -1) count++;
+			return b;
+		}
+		
+		public int read(byte[] b, int off, int len) throws IOException {
+			int n = super.read(b, off, len);
+			if(n > 0) count += n;
+			return n;
+		}
+	}
+}
@@ -0,0 +1,107 @@
+/*
+ * This file is part of IRCBot.
+ * Copyright (c) 2011 Ryan Morrison
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions, and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions, and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *  * Neither the name of the author of this software nor the name of
+ *  contributors to this software may be used to endorse or promote products
+ *  derived from this software without specific prior written consent.
+ *  
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ *  AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ *  IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ *  ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ *  LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ *  CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ *  SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ *  INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ *  CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ *  ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ *  POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package us.rddt.IRCBot;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URL;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Checks that sniffing a media link stops the rest of the file downloading, runnable without a build system:
+//   javac -cp pircbotx.jar:commons-lang3.jar -d out src/us/rddt/IRCBot/*.java test/us/rddt/IRCBot/URLGrabberTest.java
+//   java -cp pircbotx.jar:commons-lang3.jar:out us.rddt.IRCBot.URLGrabberTest
+public class URLGrabberTest {
+	// Size of the image served, small enough that the JDK would otherwise drain it in the background to reuse the connection
+	private static final int IMAGE_BYTES = 400 * 1024;
+	private static final int CHUNK_BYTES = 8192;
+	
+	public static void main(String[] args) throws Exception {
+		final ServerSocket server = new ServerSocket(0, 1, InetAddress.getByName("127.0.0.1"));
+		final AtomicLong sent = new AtomicLong();
+		Thread serverThread = new Thread(new Runnable() {
+			public void run() {
+				try {
+					serveImage(server.accept(), sent);
+				} catch (IOException ex) {
+					// The server socket was closed
+				}
+			}
+		});
+		serverThread.setDaemon(true);
+		serverThread.start();
+		try {
+			URL url = new URL("http://127.0.0.1:" + server.getLocalPort() + "/image.png");
+			String summary = new URLGrabber(null, url).getPageTitle(url);
+			// Give any background drain of the connection time to download the rest of the image
+			Thread.sleep(3000);
+			System.out.println(summary + " - " + sent.get() + " of " + IMAGE_BYTES + " bytes sent");
+			boolean ok = summary.endsWith(", 640x480") && sent.get() < IMAGE_BYTES / 2;
+			System.out.println(ok ? "1 passed, 0 failed" : "0 passed, 1 failed");
+			if(!ok) System.exit(1);
+		} finally {
+			server.close();
+		}
+	}
+	
+	// Serves a PNG slowly, as a real server across the internet would, counting the bytes written until the client hangs up
+	private static void serveImage(Socket socket, AtomicLong sent) throws IOException {
+		try {
+			// Read the request headers
+			InputStream in = socket.getInputStream();
+			StringBuilder request = new StringBuilder();
+			int b;
+			while(!request.toString().endsWith("\r\n\r\n") && (b = in.read()) != -1) request.append((char)b);
+			// Like any HTTP/1.1 server, confirm the connection won't be reused if the client asked to close it
+			boolean close = request.toString().toLowerCase().contains("\r\nconnection: close\r\n");
+
+			byte[] image = new byte[IMAGE_BYTES];
+			byte[] header = { (byte)0x89, 'P', 'N', 'G', 0x0D, 0x0A, 0x1A, 0x0A, 0, 0, 0, 13, 'I', 'H', 'D', 'R', 0, 0, 2, (byte)0x80, 0, 0, 1, (byte)0xE0 };
+			System.arraycopy(header, 0, image, 0, header.length);
+			OutputStream out = socket.getOutputStream();
+			out.write(("HTTP/1.1 200 OK\r\nContent-Type: image/png\r\nContent-Length: " + IMAGE_BYTES + (close ? "\r\nConnection: close" : "") + "\r\n\r\n").getBytes("US-ASCII"));
+			for(int offset = 0; offset < image.length; offset += CHUNK_BYTES) {
+				int length = Math.min(CHUNK_BYTES, image.length - offset);
+				out.write(image, offset, length);
+				out.flush();
+				sent.addAndGet(length);
+				Thread.sleep(20);
+			}
+		} catch (IOException ex) {
+			// The client hung up, which is what we want
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+		} finally {
+			socket.close();
+		}
+	}
+}